@@ -35,7 +35,6 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.lingala.zip4j.core.ZipFile;
@@ -52,7 +51,13 @@ public class Analyzer {
 	private Path tempDir;
 	private File sdkPath;
 
-	public Analyzer(File path) {
+	/**
+	 * @param path
+	 *            the directory of the Android SDK containing the android.jar
+	 * @throws IOException
+	 *             if the android.jar cannot be extracted
+	 */
+	public Analyzer(File path) throws IOException {
 		log = Logger.getLogger("DeprecationDetective");
 		sdkPath = path;
 		tempDir = unzip(sdkPath + "/android.jar");
@@ -73,8 +78,10 @@ public class Analyzer {
 	 * @param deprecated
 	 *            control if classes that are deprecated or not are returned.
 	 * @return
+	 * @throws IOException
+	 *             if a class cannot be loaded
 	 */
-	private List<Class<?>> getClasses(boolean deprecated) {
+	private List<Class<?>> getClasses(boolean deprecated) throws IOException {
 		List<Class<?>> listOfClasses = new LinkedList<Class<?>>();
 		for (File classFile : findClasses(tempDir.toFile())) {
 			try {
@@ -83,8 +90,7 @@ public class Analyzer {
 					listOfClasses.add(c);
 				}
 			} catch (Exception e) {
-				log.log(Level.SEVERE, "Something with the classloader and the class paths went wrong. Aborting!");
-				System.exit(1);
+				throw new IOException("Something with the classloader and the class paths went wrong loading " + classFile, e);
 			}
 		}
 		return listOfClasses;
@@ -94,7 +100,7 @@ public class Analyzer {
 	 * @return A list of all classes that are labeled with the @Deprecated
 	 *         Annotation
 	 */
-	public List<Class<?>> getDeprecatedClasses() {
+	public List<Class<?>> getDeprecatedClasses() throws IOException {
 		return getClasses(true);
 	}
 
@@ -102,7 +108,7 @@ public class Analyzer {
 	 * @return A list of all classes that are not labeled with the @Deprecated
 	 *         Annotation
 	 */
-	public List<Class<?>> getNonDeprecatedClasses() {
+	public List<Class<?>> getNonDeprecatedClasses() throws IOException {
 		return getClasses(false);
 	}
 
@@ -113,35 +119,40 @@ public class Analyzer {
 	 * @param deprecated
 	 *            control if methods that are deprecated or not are returned.
 	 * @return
+	 * @throws IOException
+	 *             if the android.jar or a class cannot be loaded
 	 */
-	private List<ClassMethodTuple> getMethods(boolean deprecated) {
+	private List<ClassMethodTuple> getMethods(boolean deprecated) throws IOException {
 		List<ClassMethodTuple> listOfMethods = new LinkedList<ClassMethodTuple>();
-		ClassLoader androidjar = null;
+		URLClassLoader androidjar = null;
 		try {
 			androidjar = getClassLoaderFromJar(sdkPath + "/android.jar");
 		} catch (Exception e) {
-			log.log(Level.SEVERE, "Something went wrong loading the android jar into the classloader. Aborting", e);
-			System.exit(1);
+			throw new IOException("Something went wrong loading the android jar into the classloader", e);
 		}
-		for (File classFile : findClasses(tempDir.toFile())) {
-			try {
-				Class<?> c = getClassFromFile(tempDir.toString() + "/", classFile.toString().replace(tempDir.toString() + "/", "").replace("/", "."));
-				if (androidjar != null) {
-					Class<?> classWithContext = androidjar.loadClass(c.getName());
-					HashSet<Executable> allMethods = new HashSet<Executable>();
-					allMethods.addAll(Arrays.asList(classWithContext.getDeclaredMethods()));
-					allMethods.addAll(Arrays.asList(classWithContext.getMethods()));
-					allMethods.addAll(Arrays.asList(classWithContext.getConstructors()));
-					for (Executable method : allMethods) {
-						if (method.isAnnotationPresent(java.lang.Deprecated.class) == deprecated) {
-							listOfMethods.add(new ClassMethodTuple(classWithContext, method));
+		try {
+			for (File classFile : findClasses(tempDir.toFile())) {
+				try {
+					Class<?> c = getClassFromFile(tempDir.toString() + "/", classFile.toString().replace(tempDir.toString() + "/", "").replace("/", "."));
+					if (androidjar != null) {
+						Class<?> classWithContext = androidjar.loadClass(c.getName());
+						HashSet<Executable> allMethods = new HashSet<Executable>();
+						allMethods.addAll(Arrays.asList(classWithContext.getDeclaredMethods()));
+						allMethods.addAll(Arrays.asList(classWithContext.getMethods()));
+						allMethods.addAll(Arrays.asList(classWithContext.getConstructors()));
+						for (Executable method : allMethods) {
+							if (method.isAnnotationPresent(java.lang.Deprecated.class) == deprecated) {
+								listOfMethods.add(new ClassMethodTuple(classWithContext, method));
+							}
 						}
 					}
+				} catch (Exception e) {
+					throw new IOException("Something with the classloader and the class paths went wrong loading " + classFile, e);
 				}
-			} catch (Exception e) {
-				log.log(Level.SEVERE, "Something with the classloader and the class paths went wrong. Aborting!", e);
-				System.exit(1);
 			}
+		} finally {
+			// The loader keeps the android.jar open, so close it to not pin replaced jars in watch mode
+			androidjar.close();
 		}
 		return listOfMethods;
 	}
@@ -150,7 +161,7 @@ public class Analyzer {
 	 * @return A list of all methods that are labeled with the @Deprecated
 	 *         Annotation
 	 */
-	public List<ClassMethodTuple> getDeprecatedMethods() {
+	public List<ClassMethodTuple> getDeprecatedMethods() throws IOException {
 		return getMethods(true);
 	}
 
@@ -158,7 +169,7 @@ public class Analyzer {
 	 * @return A list of all methods that are not labeled with the @Deprecated
 	 *         Annotation
 	 */
-	public List<ClassMethodTuple> getNonDeprecatedMethods() {
+	public List<ClassMethodTuple> getNonDeprecatedMethods() throws IOException {
 		return getMethods(false);
 	}
 
@@ -168,25 +179,20 @@ public class Analyzer {
 	 * 
 	 * @param path
 	 * @return
+	 * @throws IOException
+	 *             if the temp directory cannot be created or the jar cannot be extracted
 	 */
-	private static Path unzip(String path) {
+	private static Path unzip(String path) throws IOException {
 		String source = path.toString();
-		Path destination = null;
-		try {
-			destination = Files.createTempDirectory("androidPlatform_unpacked");
-		} catch (IOException e1) {
-			log.log(Level.SEVERE, "Could not create temp directory for extracting the Android platform. Aborting.", e1);
-			System.exit(1);
-		}
+		Path destination = Files.createTempDirectory("androidPlatform_unpacked");
 		try {
 			ZipFile zipFile = new ZipFile(source);
 			zipFile.extractAll(destination.toString());
 			return destination;
 		} catch (ZipException e) {
-			log.log(Level.SEVERE, "jar file not found. Aborting.", e);
-			System.exit(1);
+			deleteDirectory(destination.toFile());
+			throw new IOException("jar file " + source + " not found or broken", e);
 		}
-		return null;
 	}
 
 	/**
@@ -250,7 +256,7 @@ public class Analyzer {
 	 * @return
 	 * @throws Exception
 	 */
-	private static ClassLoader getClassLoaderFromJar(String directory) throws Exception {
+	private static URLClassLoader getClassLoaderFromJar(String directory) throws Exception {
 		return new URLClassLoader(new URL[] { new URL("file://" + directory) });
 	}
 }
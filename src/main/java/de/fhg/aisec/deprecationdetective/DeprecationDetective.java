@@ -25,8 +25,12 @@ package de.fhg.aisec.deprecationdetective;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,33 +41,46 @@ import java.util.logging.Logger;
  */
 public class DeprecationDetective {
 	private static final Logger log = Logger.getLogger("DeprecationDetective");
-	static String output = "deprecatedResources.xml";
+	static String output = null;
 	static File sdkLocation = new File("/opt/android-sdk/platforms");
+	static boolean watch = false;
+	static boolean sharded = false;
 	
 	/**
 	 * Gets everything done:
 	 * - Parse the sdkLocation for available SDKs
 	 * - Get all classes of each SDK and find the @Deprecated ones
-	 * - Write everything into the XML file determined by the output variable
+	 * - Write everything into the XML file determined by the output variable, or into one
+	 *   gzipped XML file per package in the output directory if sharded is set
+	 * - In watch mode, keep running and update the XML file whenever SDKs are installed or updated
 	 */
 	public static void main(String[] args) {
 		// Parse args
 		List<String> argsl = Arrays.asList(args);
-		if (argsl.contains("-s") && argsl.indexOf("-s")+1<argsl.size()) {
-			sdkLocation = new File(argsl.get(argsl.indexOf("-s")+1));
-			if (!sdkLocation.exists() || !sdkLocation.canRead()) {
+		for (int i = 0; i < argsl.size(); i++) {
+			if (argsl.get(i).equals("-s") && i+1<argsl.size()) {
+				sdkLocation = new File(argsl.get(++i));
+				if (!sdkLocation.exists() || !sdkLocation.canRead()) {
+					printUsage();
+					System.exit(-1);
+				}
+			} else if (argsl.get(i).equals("-o") && i+1<argsl.size()) {
+				output = argsl.get(++i);
+			} else if (argsl.get(i).equals("--watch")) {
+				watch = true;
+			} else if (argsl.get(i).equals("--sharded")) {
+				sharded = true;
+			} else {
 				printUsage();
 				System.exit(-1);
 			}
-		} else if (argsl.contains("-o") && argsl.indexOf("-o")+1<argsl.size()) {
-			output = argsl.get(argsl.indexOf("-o")+1);
-		} else if (argsl.size()>0) {
-			printUsage();
-			System.exit(-1);
+		}
+		if (output == null) {
+			output = sharded ? "deprecatedResources" : "deprecatedResources.xml";
 		}
 		
 		SDKParser parser = null;
-		XMLExporter xmlOut = new XMLExporter(new File(output));
+		XMLExporter xmlOut = new XMLExporter(new File(output), sharded);
 		try {
 			log.log(Level.INFO, "Parsing sdkLocation");
 			parser = new SDKParser(sdkLocation);
@@ -73,35 +90,148 @@ public class DeprecationDetective {
 			System.exit(1);
 		}
 		
+		// Register the watcher before the first run, so SDKs installed in the meantime are not missed
+		PlatformWatcher watcher = null;
+		if (watch) {
+			try {
+				watcher = new PlatformWatcher(parser.getPlatformPath());
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Could not watch directory with platform SDKs. Aborting.", e);
+				System.exit(1);
+			}
+		}
+		
 		for(int sdkVersion : parser.getSDKVersions()) {
-			log.log(Level.INFO, "Searching for deprecated items in API level " + sdkVersion);
-			Analyzer currentSDKAnalyzer = new Analyzer(parser.getPath(sdkVersion));
-			
-			// Get all deprecated classes and methods
-			for (Class<?> className : currentSDKAnalyzer.getDeprecatedClasses()) {
-				xmlOut.addEntryForDeprecatedClass(className, sdkVersion);
+			try {
+				analyzeSDK(parser, sdkVersion, xmlOut);
+			} catch (IOException | RuntimeException | LinkageError e) {
+				log.log(Level.SEVERE, "Could not analyze API level " + sdkVersion + (watch ? ", skipping it" : ". Aborting."), e);
+				if (!watch) {
+					System.exit(1);
+				}
 			}
-			for(ClassMethodTuple relation : currentSDKAnalyzer.getDeprecatedMethods()) {
-				xmlOut.addEntryForDeprecatedMethod(relation, sdkVersion);
+		}
+		log.log(Level.INFO, "Writing to file " + output);
+		xmlOut.write();
+		
+		if (watcher != null) {
+			log.log(Level.INFO, "Watching " + parser.getPlatformPath() + " for changes");
+			try {
+				watcher.watch(new PlatformRefresher(parser, xmlOut));
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Lost the directory with platform SDKs. Aborting.", e);
+				System.exit(1);
+			} catch (InterruptedException e) {
+				log.log(Level.INFO, "Stopped watching " + parser.getPlatformPath());
 			}
+		}
+		log.log(Level.INFO, "Finished!");
+	}
+	
+	/**
+	 * Adds all deprecated classes and methods of the given API level to xmlOut. If it is the latest
+	 * available API level, the non-deprecated classes and methods are added, too. Previous entries of
+	 * the API level are replaced, but only once it has been analyzed completely.
+	 * @throws IOException
+	 *             if the API level cannot be analyzed. xmlOut is left untouched in that case.
+	 */
+	private static void analyzeSDK(SDKParser parser, int sdkVersion, XMLExporter xmlOut) throws IOException {
+		log.log(Level.INFO, "Searching for deprecated items in API level " + sdkVersion);
+		Analyzer currentSDKAnalyzer = new Analyzer(parser.getPath(sdkVersion));
+		try {
+			// Get all deprecated classes and methods
+			List<Class<?>> deprecatedClasses = currentSDKAnalyzer.getDeprecatedClasses();
+			List<ClassMethodTuple> deprecatedMethods = currentSDKAnalyzer.getDeprecatedMethods();
 			
 			// Build a list of non-deprecated classes and methods basing on the latest SDK. This is useful
 			// in order to differentiate between SDK classes/methods and classes/methods from the app
-			if(sdkVersion == parser.getMaxSDK()) {
+			boolean latestSDK = sdkVersion == parser.getMaxSDK();
+			List<Class<?>> nonDeprecatedClasses = null;
+			List<ClassMethodTuple> nonDeprecatedMethods = null;
+			if(latestSDK) {
 				log.log(Level.INFO, "Searching for non-deprecated items in latest available API level " + sdkVersion);
-				for(Class<?> className : currentSDKAnalyzer.getNonDeprecatedClasses()) {
+				nonDeprecatedClasses = currentSDKAnalyzer.getNonDeprecatedClasses();
+				nonDeprecatedMethods = currentSDKAnalyzer.getNonDeprecatedMethods();
+			}
+			
+			xmlOut.removeEntriesForApiVersion(sdkVersion);
+			for (Class<?> className : deprecatedClasses) {
+				xmlOut.addEntryForDeprecatedClass(className, sdkVersion);
+			}
+			for(ClassMethodTuple relation : deprecatedMethods) {
+				xmlOut.addEntryForDeprecatedMethod(relation, sdkVersion);
+			}
+			if(latestSDK) {
+				xmlOut.removeNonDeprecatedEntries();
+				for(Class<?> className : nonDeprecatedClasses) {
 					xmlOut.addEntryForNonDeprecatedClass(className);
 				}
-				for(ClassMethodTuple relation : currentSDKAnalyzer.getNonDeprecatedMethods()) {
+				for(ClassMethodTuple relation : nonDeprecatedMethods) {
 					xmlOut.addEntryForNonDeprecatedMethod(relation);
 				}
 			}
-			
+		} finally {
 			currentSDKAnalyzer.cleanUp(); // Important! Deletes the files extracted from the Android SDK
 		}
-		log.log(Level.INFO, "Wrtiting to file " + output);
-		xmlOut.write();
-		log.log(Level.INFO, "Finished!");
+	}
+	
+	/**
+	 * Analyzes the API levels reported by the PlatformWatcher again and rewrites the output file afterwards.
+	 * API levels that cannot be analyzed, e.g. because their android.jar is still being written, keep their
+	 * previous entries.
+	 */
+	private static class PlatformRefresher implements Consumer<Set<Integer>> {
+		private SDKParser parser;
+		private XMLExporter xmlOut;
+		private int analyzedMaxSDK;
+		private Set<Integer> pendingSDKs = new TreeSet<Integer>();
+		
+		PlatformRefresher(SDKParser parser, XMLExporter xmlOut) {
+			this.parser = parser;
+			this.xmlOut = xmlOut;
+			analyzedMaxSDK = parser.getMaxSDK();
+		}
+		
+		@Override
+		public void accept(Set<Integer> changedSDKs) {
+			pendingSDKs.addAll(changedSDKs);
+			// Without a listing of the platform directory we can't tell installed from removed SDKs, so don't
+			// touch the output and handle the changed SDKs with the next change
+			if (!parser.refresh()) {
+				log.log(Level.WARNING, "Could not refresh the list of SDKs, keeping the current output");
+				return;
+			}
+			Set<Integer> sdksToAnalyze = new TreeSet<Integer>(pendingSDKs);
+			pendingSDKs.clear();
+			// Events for deleted SDKs might have been lost, so drop every API level that is gone
+			Set<Integer> removedSDKs = xmlOut.getApiVersions();
+			removedSDKs.removeAll(Arrays.asList(parser.getSDKVersions()));
+			sdksToAnalyze.addAll(removedSDKs);
+			// The non-deprecated items are taken from the latest SDK, so they have to be rebuilt if it changed
+			if (parser.getMaxSDK() == 0) {
+				xmlOut.removeNonDeprecatedEntries();
+				analyzedMaxSDK = 0;
+			} else if (parser.getMaxSDK() != analyzedMaxSDK) {
+				sdksToAnalyze.add(parser.getMaxSDK());
+			}
+			for (int sdkVersion : sdksToAnalyze) {
+				if (!new File(parser.getPath(sdkVersion), "android.jar").isFile()) {
+					log.log(Level.INFO, "API level " + sdkVersion + " is not installed (anymore)");
+					xmlOut.removeEntriesForApiVersion(sdkVersion);
+					continue;
+				}
+				try {
+					analyzeSDK(parser, sdkVersion, xmlOut);
+					if (sdkVersion == parser.getMaxSDK()) {
+						analyzedMaxSDK = sdkVersion;
+					}
+				} catch (IOException | RuntimeException | LinkageError e) {
+					log.log(Level.SEVERE, "Could not analyze API level " + sdkVersion + ", keeping its previous entries", e);
+				}
+			}
+			log.log(Level.INFO, "Writing to file " + output);
+			xmlOut.write();
+		}
 	}
 
 	private static void printUsage() {
@@ -111,5 +241,8 @@ public class DeprecationDetective {
 		System.out.println("-h                      Show this help");
 		System.out.println("-s <android-sdk-dir>    Path to Android SDK platforms. Default: /opt/android-sdk/platforms");
 		System.out.println("-o <output file>        Name of output file. Default: deprecatedResources.xml");	
+		System.out.println("                        With --sharded, name of output directory. Default: deprecatedResources");
+		System.out.println("--watch                 Keep running and analyze SDKs again when they are installed or updated");
+		System.out.println("--sharded               Write one gzipped XML file per package and a manifest.xml listing them");
 	}
 }
@@ -0,0 +1,177 @@
+/**
+The MIT License (MIT)
+
+Copyright (c) 2015, Fraunhofer AISEC
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+ */
+package de.fhg.aisec.deprecationdetective;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the directory containing the Android platform SDKs and reports which
+ * API levels have been added, removed or got a new android.jar. Bursts of file
+ * events, e.g. while sdkmanager unpacks a platform, are collected until the
+ * directory has been quiet for a while and then reported at once.
+ * 
+ * @author Michael Eder (michael.eder@aisec.fraunhofer.de)
+ *
+ */
+public class PlatformWatcher {
+	private static final long QUIET_PERIOD_MS = 5000;
+	private Logger log;
+	private Path platformPath;
+	private WatchService watchService;
+	private WatchKey platformKey;
+	private Map<WatchKey, Integer> sdkKeys;
+	
+	@SuppressWarnings("unused")
+	private PlatformWatcher() {
+	}
+	
+	/**
+	 * Registers the watcher on the given platform directory and all SDK directories in it
+	 * @param platformDirectory
+	 * @throws IOException
+	 */
+	public PlatformWatcher(File platformDirectory) throws IOException {
+		log = Logger.getLogger("DeprecationDetective");
+		platformPath = platformDirectory.getAbsoluteFile().toPath();
+		watchService = platformPath.getFileSystem().newWatchService();
+		platformKey = platformPath.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+		sdkKeys = new HashMap<WatchKey, Integer>();
+		registerAll(new TreeSet<Integer>());
+	}
+	
+	/**
+	 * Blocks forever and calls onChange with the versions of all SDKs that have been added,
+	 * removed or modified since the last call
+	 * @param onChange
+	 * @throws IOException
+	 *             if the platform directory is gone and cannot be watched again
+	 * @throws InterruptedException
+	 */
+	public void watch(Consumer<Set<Integer>> onChange) throws IOException, InterruptedException {
+		while (true) {
+			Set<Integer> changedSDKs = new TreeSet<Integer>();
+			WatchKey key = watchService.take();
+			do {
+				collect(key, changedSDKs);
+				key = watchService.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+			} while (key != null);
+			if (!changedSDKs.isEmpty()) {
+				try {
+					onChange.accept(changedSDKs);
+				} catch (RuntimeException e) {
+					log.log(Level.SEVERE, "Handling the changed SDKs " + changedSDKs + " failed, continuing to watch", e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds the versions of all SDKs affected by the pending events of key to changedSDKs
+	 * @throws IOException
+	 *             if the platform directory is gone and cannot be watched again
+	 */
+	private void collect(WatchKey key, Set<Integer> changedSDKs) throws IOException {
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				// Events got lost, so we don't know what happened. Simply treat every SDK as changed,
+				// including the ones we watched before, which might have been deleted in the meantime
+				changedSDKs.addAll(sdkKeys.values());
+				registerAll(changedSDKs);
+				continue;
+			}
+			String name = event.context().toString();
+			if (key == platformKey) {
+				Integer version = SDKParser.parseVersion(name);
+				if (version == null || event.kind() == ENTRY_MODIFY) {
+					continue;
+				}
+				if (event.kind() == ENTRY_CREATE) {
+					register(platformPath.resolve(name), version);
+				}
+				changedSDKs.add(version);
+			} else if (sdkKeys.containsKey(key) && name.equals("android.jar")) {
+				changedSDKs.add(sdkKeys.get(key));
+			}
+		}
+		if (!key.reset()) {
+			if (key == platformKey) {
+				// The platform directory itself is gone, e.g. because the SDK has been reinstalled. Watch the
+				// directory that took its place and, like after an overflow, treat every SDK as changed
+				log.log(Level.WARNING, platformPath + " has been removed, watching it again");
+				platformKey = platformPath.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				changedSDKs.addAll(sdkKeys.values());
+				registerAll(changedSDKs);
+			} else {
+				sdkKeys.remove(key); // directory is gone
+			}
+		}
+	}
+	
+	/**
+	 * Registers all SDK directories currently in the platform directory and adds their versions to changedSDKs
+	 */
+	private void registerAll(Set<Integer> changedSDKs) {
+		String[] directories = platformPath.toFile().list();
+		if (directories == null) {
+			log.log(Level.WARNING, "Could not list " + platformPath);
+			return;
+		}
+		for (String directory : directories) {
+			Integer version = SDKParser.parseVersion(directory);
+			if (version != null) {
+				register(platformPath.resolve(directory), version);
+				changedSDKs.add(version);
+			}
+		}
+	}
+	
+	private void register(Path sdkDirectory, int version) {
+		if (!sdkDirectory.toFile().isDirectory()) {
+			return;
+		}
+		try {
+			sdkKeys.put(sdkDirectory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), version);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Could not watch " + sdkDirectory + ", changes to its android.jar will be missed", e);
+		}
+	}
+}
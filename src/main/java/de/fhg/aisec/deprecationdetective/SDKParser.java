@@ -87,23 +87,58 @@ public class SDKParser {
 		return new File(platformPath.getAbsolutePath() + "/android-" + version);
 	}
 	
+	/**
+	 * @return the directory containing the Android platform SDKs
+	 */
+	public File getPlatformPath() {
+		return platformPath;
+	}
+	
+	/**
+	 * Scans the platform directory again, e.g. after new SDKs have been installed
+	 * @return false if the directory could not be listed. The previously found SDKs are kept in that case.
+	 */
+	public boolean refresh() {
+		return analyze();
+	}
+	
+	/**
+	 * @param directory name of a directory in the platform directory, for example android-23
+	 * @return the SDK version of the directory or null if it does not contain a released SDK
+	 */
+	static Integer parseVersion(String directory) {
+		if(!directory.startsWith("android-")) {
+			return null;
+		}
+		try {
+			return Integer.parseInt(directory.substring("android-".length()));
+		} catch(NumberFormatException e) {
+			// preview SDKs sometimes have non-numerical names. simply ignore them
+			return null;
+		}
+	}
+	
 	/**
 	 * analyzes the directoy and sets all variables accordingly
+	 * @return false if the directory could not be listed, leaving all variables untouched
 	 */
-	private void analyze() {
-		for(String directory : platformPath.getAbsoluteFile().list()) {
-			if(directory.startsWith("android-")) {
-				String version = directory.split("-")[1];
-				try {
-					Integer versionNumber = Integer.parseInt(version);
-					availableSDKs.add(versionNumber);
-					if(versionNumber > maxSDK) {
-						maxSDK = versionNumber;
-					}
-				} catch(NumberFormatException e) {
-					// preview SDKs sometimes have non-numerical names. simply ignore them
+	private boolean analyze() {
+		String[] directories = platformPath.getAbsoluteFile().list();
+		if(directories == null) {
+			log.log(Level.WARNING, "Could not list the SDK path " + platformPath);
+			return false;
+		}
+		availableSDKs.clear();
+		maxSDK = 0;
+		for(String directory : directories) {
+			Integer versionNumber = parseVersion(directory);
+			if(versionNumber != null) {
+				availableSDKs.add(versionNumber);
+				if(versionNumber > maxSDK) {
+					maxSDK = versionNumber;
 				}
 			}
 		}
+		return true;
 	}
 }
@@ -24,8 +24,23 @@ SOFTWARE.
 package de.fhg.aisec.deprecationdetective;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Executable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,14 +56,20 @@ import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
 
 /**
  * @author Michael Eder (michael.eder@aisec.fraunhofer.de)
  *
  */
 public class XMLExporter {
+	private static final String MANIFEST_NAME = "manifest.xml";
+	private static final String SHARD_SUFFIX = ".xml.gz";
 	private Logger log;
 	private File outputFile;
+	private boolean sharded;
 	private DocumentBuilder xmlBuilder;
 	private Document xmlDoc;
 	private Element rootElement;
@@ -64,21 +85,54 @@ public class XMLExporter {
 	 * @param filename
 	 */
 	public XMLExporter(File filename) {
+		this(filename, false);
+	}
+	
+	/**
+	 * Initialize the XMLExporter and create the basic structure of the XML document
+	 * @param filename
+	 * @param sharded
+	 *            if set, filename is a directory that receives one gzipped XML file per package
+	 *            and a manifest listing them instead of a single XML file
+	 */
+	public XMLExporter(File filename, boolean sharded) {
 		log = Logger.getLogger("DeprecationDetective");
 		outputFile = filename;
+		this.sharded = sharded;
 		try {
 			xmlBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
 		} catch (ParserConfigurationException e) {
 			log.log(Level.SEVERE, "Something with the XMLBuilder went wrong. Aborting");
 			System.exit(1);
 		}
-		xmlDoc = xmlBuilder.newDocument();
-		rootElement = xmlDoc.createElement("data");
-		xmlDoc.appendChild(rootElement);
-		classes = xmlDoc.createElement("classes");
-		methods = xmlDoc.createElement("methods");
-		rootElement.appendChild(classes);
-		rootElement.appendChild(methods);
+		xmlDoc = newDataDocument();
+		rootElement = xmlDoc.getDocumentElement();
+		classes = getSection(xmlDoc, "classes");
+		methods = getSection(xmlDoc, "methods");
+	}
+	
+	/**
+	 * Creates an empty document with the data, classes and methods elements
+	 */
+	private Document newDataDocument() {
+		Document doc = xmlBuilder.newDocument();
+		Element data = doc.createElement("data");
+		doc.appendChild(data);
+		data.appendChild(doc.createElement("classes"));
+		data.appendChild(doc.createElement("methods"));
+		return doc;
+	}
+	
+	/**
+	 * @return the classes or methods element of a document created by newDataDocument()
+	 */
+	private static Element getSection(Document doc, String name) {
+		for (Node child = doc.getDocumentElement().getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeName().equals(name)) {
+				return (Element) child;
+			}
+		}
+		return null;
 	}
 	
 	/**
@@ -136,19 +190,276 @@ public class XMLExporter {
 	}
 	
 	/**
-	 * Write everything to file
+	 * @return all API versions there are entries for deprecated classes or methods for
+	 */
+	public Set<Integer> getApiVersions() {
+		Set<Integer> apiVersions = new TreeSet<Integer>();
+		for (Element section : Arrays.asList(classes, methods)) {
+			for (Node child = section.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if (child instanceof Element && !((Element) child).getAttribute("api").isEmpty()) {
+					apiVersions.add(Integer.valueOf(((Element) child).getAttribute("api")));
+				}
+			}
+		}
+		return apiVersions;
+	}
+	
+	/**
+	 * Removes all deprecated classes and methods that were added for the given apiVersion,
+	 * e.g. before the API level is analyzed again
+	 * @param apiVersion
+	 */
+	public void removeEntriesForApiVersion(int apiVersion) {
+		removeChildren(classes, "deprecated", String.valueOf(apiVersion));
+		removeChildren(methods, "deprecated", String.valueOf(apiVersion));
+	}
+	
+	/**
+	 * Removes all non-deprecated classes and methods, e.g. before a newer API level
+	 * becomes the reference for them
+	 */
+	public void removeNonDeprecatedEntries() {
+		removeChildren(classes, "non-deprecated", null);
+		removeChildren(methods, "non-deprecated", null);
+	}
+	
+	/**
+	 * Removes all child elements of parent with the given tag name and, if apiVersion is not null,
+	 * the given api attribute
+	 */
+	private static void removeChildren(Element parent, String tagName, String apiVersion) {
+		List<Node> obsolete = new ArrayList<Node>();
+		for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child instanceof Element && child.getNodeName().equals(tagName)
+					&& (apiVersion == null || apiVersion.equals(((Element) child).getAttribute("api")))) {
+				obsolete.add(child);
+			}
+		}
+		for (Node child : obsolete) {
+			parent.removeChild(child);
+		}
+	}
+	
+	/**
+	 * Write everything to file, or to one file per package if the exporter is sharded.
+	 * Every file is written to a temporary file next to it first and then renamed, so readers
+	 * never see a partially written file.
 	 */
 	public void write() {
-		Transformer transformer;
 		try {
-			transformer = TransformerFactory.newInstance().newTransformer();
+			if (sharded) {
+				writeShards(outputFile.getAbsoluteFile().toPath());
+			} else {
+				writeAtomically(xmlDoc, outputFile.getAbsoluteFile().toPath(), false);
+			}
+		} catch (TransformerException | IOException e) {
+			log.log(Level.SEVERE, "Something went wrong while writing the file", e);
+		}
+	}
+	
+	/**
+	 * Splits the entries by the package of their class and writes one gzipped XML file per package
+	 * into directory. The file names contain a prefix of their SHA-256 checksum, so a new version of
+	 * a package never replaces a file an existing manifest refers to. The manifest, which lists the
+	 * file, entry counts and checksum of every package, is renamed into place last and is the single
+	 * point at which readers switch to the new set of files.
+	 * 
+	 * Readers that just read the previous manifest may still be loading its files, so these are kept
+	 * for one more generation: the manifest lists them as "previous" files, and a file is only deleted
+	 * once the manifest before the previous one was the last to refer to it. A reader may therefore use
+	 * a manifest until the manifest after the next one has been written, i.e. for at least one complete
+	 * refresh. Other files in directory are never touched.
+	 */
+	private void writeShards(Path directory) throws TransformerException, IOException {
+		Files.createDirectories(directory);
+		Map<String, Document> shards = new TreeMap<String, Document>();
+		addToShards(classes, "name", shards);
+		addToShards(methods, "class", shards);
+		
+		Document manifest = xmlBuilder.newDocument();
+		Element shardList = manifest.createElement("shards");
+		manifest.appendChild(shardList);
+		List<String> shardFiles = new ArrayList<String>();
+		for (Map.Entry<String, Document> shard : shards.entrySet()) {
+			String baseName = shard.getKey().isEmpty() ? "default" : shard.getKey();
+			Path tempFile = directory.resolve(baseName + SHARD_SUFFIX + ".tmp");
+			String checksum;
+			String fileName;
+			try {
+				checksum = writeDocument(shard.getValue(), tempFile, true);
+				fileName = baseName + "-" + checksum.substring(0, 16) + SHARD_SUFFIX;
+				// A file with the same name has the same content already, leave it alone for current readers
+				if (!Files.exists(directory.resolve(fileName))) {
+					Files.move(tempFile, directory.resolve(fileName), StandardCopyOption.ATOMIC_MOVE);
+				}
+			} finally {
+				Files.deleteIfExists(tempFile);
+			}
+			Element node = manifest.createElement("shard");
+			shardList.appendChild(node);
+			node.setAttribute("package", shard.getKey());
+			node.setAttribute("file", fileName);
+			node.setAttribute("classes", String.valueOf(countEntries(getSection(shard.getValue(), "classes"))));
+			node.setAttribute("methods", String.valueOf(countEntries(getSection(shard.getValue(), "methods"))));
+			node.setAttribute("sha256", checksum);
+			shardFiles.add(fileName);
+		}
+		
+		Document previousManifest = readManifest(directory.resolve(MANIFEST_NAME));
+		List<String> previousShardFiles = getShardFiles(previousManifest, directory.resolve(MANIFEST_NAME), "shard");
+		List<String> olderShardFiles = getShardFiles(previousManifest, directory.resolve(MANIFEST_NAME), "previous");
+		for (String fileName : previousShardFiles) {
+			Element node = manifest.createElement("previous");
+			shardList.appendChild(node);
+			node.setAttribute("file", fileName);
+		}
+		writeAtomically(manifest, directory.resolve(MANIFEST_NAME), false);
+		
+		for (String fileName : olderShardFiles) {
+			if (!shardFiles.contains(fileName) && !previousShardFiles.contains(fileName)) {
+				Files.deleteIfExists(directory.resolve(fileName));
+			}
+		}
+	}
+	
+	/**
+	 * @return the parsed manifest or null if it does not exist or cannot be read
+	 */
+	private Document readManifest(Path manifest) {
+		if (!Files.exists(manifest)) {
+			return null;
+		}
+		try {
+			return xmlBuilder.parse(manifest.toFile());
+		} catch (SAXException | IOException e) {
+			log.log(Level.WARNING, "Could not read the previous manifest, its shards are not cleaned up", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * @param tagName
+	 *            shard for the files of the manifest itself, previous for the files of the manifest before it
+	 * @return the shard files listed in the given manifest, or an empty list if there is no manifest
+	 */
+	private static List<String> getShardFiles(Document manifest, Path manifestPath, String tagName) {
+		List<String> shardFiles = new ArrayList<String>();
+		if (manifest == null) {
+			return shardFiles;
+		}
+		NodeList shards = manifest.getElementsByTagName(tagName);
+		for (int i = 0; i < shards.getLength(); i++) {
+			String fileName = ((Element) shards.item(i)).getAttribute("file");
+			// Only accept shards right next to the manifest, never paths pointing anywhere else
+			Path shardFile = manifestPath.resolveSibling(fileName).normalize();
+			if (fileName.endsWith(SHARD_SUFFIX) && manifestPath.getParent().equals(shardFile.getParent())) {
+				shardFiles.add(shardFile.getFileName().toString());
+			}
+		}
+		return shardFiles;
+	}
+	
+	/**
+	 * Copies every entry of section into the same section of the shard document of its package
+	 * @param classAttribute
+	 *            the attribute holding the name of the class the entry belongs to
+	 */
+	private void addToShards(Element section, String classAttribute, Map<String, Document> shards) {
+		for (Node child = section.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (!(child instanceof Element)) {
+				continue;
+			}
+			String className = ((Element) child).getAttribute(classAttribute);
+			String packageName = className.lastIndexOf('.') < 0 ? "" : className.substring(0, className.lastIndexOf('.'));
+			Document shard = shards.computeIfAbsent(packageName, p -> newDataDocument());
+			getSection(shard, section.getNodeName()).appendChild(shard.importNode(child, true));
+		}
+	}
+	
+	private static int countEntries(Element section) {
+		int count = 0;
+		for (Node child = section.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child instanceof Element) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Writes doc to a temporary file next to target and renames it to target afterwards
+	 * @param compressed
+	 *            write gzipped and unindented XML instead of indented plain XML
+	 * @return the SHA-256 checksum of the written file as hex string
+	 */
+	private String writeAtomically(Document doc, Path target, boolean compressed) throws TransformerException, IOException {
+		Path tempFile = target.resolveSibling(target.getFileName() + ".tmp");
+		try {
+			String checksum = writeDocument(doc, tempFile, compressed);
+			copyPermissions(target, tempFile);
+			Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return checksum;
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+	
+	/**
+	 * Writes doc to file, replacing anything that was there before
+	 * @param compressed
+	 *            write gzipped and unindented XML instead of indented plain XML
+	 * @return the SHA-256 checksum of the written file as hex string
+	 */
+	private String writeDocument(Document doc, Path file, boolean compressed) throws TransformerException, IOException {
+		MessageDigest digest = null;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			log.log(Level.SEVERE, "SHA-256 is not available. Aborting");
+			System.exit(1);
+		}
+		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		if (!compressed) {
 			transformer.setOutputProperty(OutputKeys.INDENT, "yes"); 
 			transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
-			DOMSource source = new DOMSource(xmlDoc);
-			StreamResult result = new StreamResult(outputFile);
-			transformer.transform(source, result);
-		} catch (TransformerException e) {
-			log.log(Level.SEVERE, "Something went wrong while writing the file");
+		}
+		// Not Files.createTempFile() for temporary files, which would create them readable for their owner only
+		Files.deleteIfExists(file);
+		try (OutputStream out = openOutputStream(file, digest, compressed)) {
+			transformer.transform(new DOMSource(doc), new StreamResult(out));
+		}
+		StringBuilder checksum = new StringBuilder();
+		for (byte b : digest.digest()) {
+			checksum.append(String.format("%02x", b));
+		}
+		return checksum.toString();
+	}
+	
+	/**
+	 * Opens file for writing. Everything written to the file is passed to digest, too.
+	 * @param compressed
+	 *            gzip everything written to the returned stream
+	 */
+	private static OutputStream openOutputStream(Path file, MessageDigest digest, boolean compressed) throws IOException {
+		OutputStream out = new DigestOutputStream(Files.newOutputStream(file), digest);
+		if (!compressed) {
+			return out;
+		}
+		try {
+			return new GZIPOutputStream(out);
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Gives tempFile the permissions of target if it exists. Otherwise tempFile keeps the
+	 * permissions it was created with, which respect the umask.
+	 */
+	private static void copyPermissions(Path target, Path tempFile) throws IOException {
+		if (Files.exists(target) && target.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.setPosixFilePermissions(tempFile, Files.getPosixFilePermissions(target));
 		}
 	}
 }